@@ -1,15 +1,34 @@
 package comp0012.main;
 
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.BootstrapMethod;
+import org.apache.bcel.classfile.BootstrapMethods;
 import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.Code;
+import org.apache.bcel.classfile.Constant;
+import org.apache.bcel.classfile.ConstantCP;
+import org.apache.bcel.classfile.ConstantFloat;
+import org.apache.bcel.classfile.ConstantInteger;
+import org.apache.bcel.classfile.ConstantInvokeDynamic;
+import org.apache.bcel.classfile.ConstantMethodHandle;
+import org.apache.bcel.classfile.ConstantObject;
+import org.apache.bcel.classfile.ConstantPool;
+import org.apache.bcel.classfile.ConstantString;
+import org.apache.bcel.classfile.ConstantUtf8;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.Method;
+import org.apache.bcel.classfile.Unknown;
 import org.apache.bcel.generic.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -18,8 +37,8 @@ import java.util.Set;
 import java.util.Stack;
 
 interface InstructionOptimizer {
-    void optimize(InstructionHandle handle, InstructionList list, Stack<Number> constantStack,
-            HashMap<Integer, Number> vars, ConstantPoolGen cpgen);
+    void optimize(InstructionHandle handle, InstructionList list, Stack<StackValue> constantStack,
+            VariableState vars, ConstantPoolGen cpgen);
 }
 
 interface ArithmeticOperation {
@@ -36,7 +55,7 @@ abstract class InstructionHandler {
     abstract boolean canHandle(Instruction instruction);
 
     abstract void handle(InstructionHandle handle, InstructionList list,
-            Stack<Number> constantStack, HashMap<Integer, Number> vars);
+            Stack<StackValue> constantStack, VariableState vars);
 }
 
 // Concrete arithmetic operations
@@ -111,105 +130,648 @@ class DivideOperation implements ArithmeticOperation {
 // Utility class for instruction-related operations
 class InstructionUtils {
     static void deleteInstruction(InstructionHandle handle, InstructionList list) {
+        InstructionHandle next = handle.getNext();
+        InstructionHandle prev = handle.getPrev();
+
+        // Move branches, exception ranges, line numbers and local variable
+        // ranges off the handle before it goes away
+        redirectTargeters(handle, next, prev);
+
         try {
-            // Get all instructions that target this handle
-            InstructionTargeter[] targeters = handle.getTargeters();
-            if (targeters != null) {
-                for (InstructionTargeter targeter : targeters) {
-                    if (targeter instanceof BranchInstruction) {
-                        BranchInstruction branch = (BranchInstruction) targeter;
-                        // Update the target to the next instruction
-                        branch.setTarget(handle.getNext());
+            list.delete(handle);
+        } catch (TargetLostException e) {
+            for (InstructionHandle target : e.getTargets()) {
+                redirectTargeters(target, next, prev);
+            }
+        }
+    }
+
+    private static void redirectTargeters(InstructionHandle handle, InstructionHandle next,
+            InstructionHandle prev) {
+        InstructionTargeter[] targeters = handle.getTargeters();
+        if (targeters == null) {
+            return;
+        }
+
+        // Starts of ranges move forward, ends of ranges move backward so a
+        // range never grows to cover instructions it did not cover before
+        InstructionHandle forward = next != null ? next : prev;
+        InstructionHandle backward = prev != null ? prev : next;
+
+        for (InstructionTargeter targeter : targeters) {
+            if (targeter instanceof CodeExceptionGen) {
+                CodeExceptionGen exceptionGen = (CodeExceptionGen) targeter;
+                if (exceptionGen.getStartPC() == handle) {
+                    exceptionGen.setStartPC(forward);
+                }
+                if (exceptionGen.getEndPC() == handle) {
+                    exceptionGen.setEndPC(backward);
+                }
+                if (exceptionGen.getHandlerPC() == handle) {
+                    exceptionGen.setHandlerPC(forward);
+                }
+            } else if (targeter instanceof LocalVariableGen) {
+                LocalVariableGen variableGen = (LocalVariableGen) targeter;
+                if (variableGen.getStart() == handle) {
+                    variableGen.setStart(forward);
+                }
+                if (variableGen.getEnd() == handle) {
+                    variableGen.setEnd(backward);
+                }
+            } else {
+                // Branches, switches and line numbers follow the code that
+                // replaces the deleted instruction
+                targeter.updateTarget(handle, forward);
+            }
+        }
+    }
+
+    // Replace the straight-line run first..last with a single instruction
+    static InstructionHandle replaceRun(InstructionHandle first, InstructionHandle last, Instruction replacement,
+            InstructionList list) {
+        InstructionHandle replaced = list.append(last, replacement);
+
+        // Deleting front to back lets targeters of the run slide onto the replacement
+        InstructionHandle current = first;
+        while (current != replaced) {
+            InstructionHandle next = current.getNext();
+            deleteInstruction(current, list);
+            current = next;
+        }
+        return replaced;
+    }
+
+    // Control can arrive here other than from the previous instruction
+    static boolean isJoinPoint(InstructionHandle handle) {
+        InstructionTargeter[] targeters = handle.getTargeters();
+        if (targeters == null) {
+            return false;
+        }
+        for (InstructionTargeter targeter : targeters) {
+            // Line numbers and local variable ranges do not affect control flow
+            if (targeter instanceof BranchInstruction || targeter instanceof CodeExceptionGen
+                    || targeter instanceof StackMapFrame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Instruction that pushes a folded constant, or null if it has no constant pool form
+    static Instruction constantInstruction(Object value, ConstantPoolGen cpgen) {
+        if (value instanceof Double) {
+            return new LDC2_W(cpgen.addDouble((Double) value));
+        } else if (value instanceof Long) {
+            return new LDC2_W(cpgen.addLong((Long) value));
+        } else if (value instanceof Integer) {
+            return new LDC(cpgen.addInteger((Integer) value));
+        } else if (value instanceof Float) {
+            return new LDC(cpgen.addFloat((Float) value));
+        } else if (value instanceof String) {
+            return new LDC(cpgen.addString((String) value));
+        }
+        return null;
+    }
+}
+
+// Entry of a stack map frame's locals or stack (JVMS 4.7.4)
+class VerificationType implements InstructionTargeter {
+    static final int INTEGER = 1;
+    static final int FLOAT = 2;
+    static final int DOUBLE = 3;
+    static final int LONG = 4;
+    static final int UNINITIALIZED_THIS = 6;
+    static final int OBJECT = 7;
+    static final int UNINITIALIZED = 8;
+
+    final int tag;
+    // Constant pool class of an Object entry
+    final int index;
+    // NEW instruction of an Uninitialized entry
+    private InstructionHandle target;
+    private boolean lost;
+
+    VerificationType(int tag, int index, InstructionHandle target) {
+        this.tag = tag;
+        this.index = index;
+        this.target = target;
+        if (target != null) {
+            target.addTargeter(this);
+        }
+    }
+
+    static VerificationType of(Type type, ConstantPoolGen cpgen) {
+        if (type.equals(Type.FLOAT)) {
+            return new VerificationType(FLOAT, 0, null);
+        } else if (type.equals(Type.DOUBLE)) {
+            return new VerificationType(DOUBLE, 0, null);
+        } else if (type.equals(Type.LONG)) {
+            return new VerificationType(LONG, 0, null);
+        } else if (type instanceof ArrayType) {
+            return new VerificationType(OBJECT, cpgen.addArrayClass((ArrayType) type), null);
+        } else if (type instanceof ObjectType) {
+            return new VerificationType(OBJECT, cpgen.addClass((ObjectType) type), null);
+        }
+        return new VerificationType(INTEGER, 0, null);
+    }
+
+    static VerificationType read(DataInputStream in, InstructionList list) throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == OBJECT) {
+            return new VerificationType(tag, in.readUnsignedShort(), null);
+        } else if (tag == UNINITIALIZED) {
+            return new VerificationType(tag, 0, StackMapFrames.handleAt(list, in.readUnsignedShort()));
+        }
+        return new VerificationType(tag, 0, null);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(tag);
+        if (tag == OBJECT) {
+            out.writeShort(index);
+        } else if (tag == UNINITIALIZED) {
+            out.writeShort(target.getPosition());
+        }
+    }
+
+    boolean isLost() {
+        return lost;
+    }
+
+    @Override
+    public boolean containsTarget(InstructionHandle handle) {
+        return target == handle;
+    }
+
+    // The NEW an Uninitialized entry refers to must stay where it is
+    @Override
+    public void updateTarget(InstructionHandle oldHandle, InstructionHandle newHandle) {
+        if (target == oldHandle) {
+            oldHandle.removeTargeter(this);
+            target = newHandle;
+            newHandle.addTargeter(this);
+            lost = true;
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof VerificationType)) {
+            return false;
+        }
+        VerificationType type = (VerificationType) other;
+        return tag == type.tag && index == type.index && target == type.target;
+    }
+
+    @Override
+    public int hashCode() {
+        return tag * 31 + index;
+    }
+}
+
+// Frame of a StackMapTable, expanded to its full locals and stack and kept on the
+// instruction it describes so its offset follows the code
+class StackMapFrame implements InstructionTargeter {
+    final List<VerificationType> locals;
+    final List<VerificationType> stack;
+    private InstructionHandle target;
+    private boolean moved;
+
+    StackMapFrame(InstructionHandle target, List<VerificationType> locals, List<VerificationType> stack) {
+        this.target = target;
+        this.locals = locals;
+        this.stack = stack;
+        target.addTargeter(this);
+    }
+
+    InstructionHandle getTarget() {
+        return target;
+    }
+
+    boolean isMoved() {
+        return moved;
+    }
+
+    @Override
+    public boolean containsTarget(InstructionHandle handle) {
+        return target == handle;
+    }
+
+    @Override
+    public void updateTarget(InstructionHandle oldHandle, InstructionHandle newHandle) {
+        if (target == oldHandle) {
+            oldHandle.removeTargeter(this);
+            target = newHandle;
+            newHandle.addTargeter(this);
+            moved = true;
+        }
+    }
+}
+
+// Stack map frames of a method across a rewrite. Folding never crosses a join point and
+// every frame sits on one, so the types in each frame still hold afterwards and only the
+// offsets have to be written again.
+class StackMapFrames {
+    private static final String ATTRIBUTE_NAME = "StackMapTable";
+
+    private final List<VerificationType> initialLocals;
+    private final List<StackMapFrame> frames = new ArrayList<>();
+
+    private StackMapFrames(List<VerificationType> initialLocals) {
+        this.initialLocals = initialLocals;
+    }
+
+    // Frames of the method's StackMapTable, or null if it has none
+    static StackMapFrames read(MethodGen methodGen, ConstantPoolGen cpgen) throws IOException {
+        Attribute table = null;
+        for (Attribute attribute : methodGen.getCodeAttributes()) {
+            Constant name = cpgen.getConstant(attribute.getNameIndex());
+            if (name instanceof ConstantUtf8 && ((ConstantUtf8) name).getBytes().equals(ATTRIBUTE_NAME)) {
+                table = attribute;
+            }
+        }
+        if (table == null) {
+            return null;
+        }
+
+        // Frames before the first are described by the method signature
+        List<VerificationType> locals = new ArrayList<>();
+        if (!methodGen.isStatic()) {
+            if (methodGen.getName().equals("<init>") && !methodGen.getClassName().equals("java.lang.Object")) {
+                locals.add(new VerificationType(VerificationType.UNINITIALIZED_THIS, 0, null));
+            } else {
+                locals.add(VerificationType.of(new ObjectType(methodGen.getClassName()), cpgen));
+            }
+        }
+        for (Type type : methodGen.getArgumentTypes()) {
+            locals.add(VerificationType.of(type, cpgen));
+        }
+        StackMapFrames result = new StackMapFrames(locals);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.dump(new DataOutputStream(bytes));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        // Skip the attribute name and length
+        in.skipBytes(6);
+
+        InstructionList list = methodGen.getInstructionList();
+        int count = in.readUnsignedShort();
+        int offset = -1;
+        for (int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+            List<VerificationType> stack = new ArrayList<>();
+            int delta;
+            if (type < 64) {
+                delta = type;
+            } else if (type < 128) {
+                delta = type - 64;
+                stack.add(VerificationType.read(in, list));
+            } else if (type < 247) {
+                throw new IOException("Unknown stack map frame type " + type);
+            } else {
+                delta = in.readUnsignedShort();
+                if (type == 247) {
+                    stack.add(VerificationType.read(in, list));
+                } else if (type < 251) {
+                    locals = new ArrayList<>(locals.subList(0, locals.size() - (251 - type)));
+                } else if (type > 251 && type < 255) {
+                    locals = new ArrayList<>(locals);
+                    for (int k = 251; k < type; k++) {
+                        locals.add(VerificationType.read(in, list));
                     }
+                } else if (type == 255) {
+                    locals = readTypes(in, list);
+                    stack = readTypes(in, list);
                 }
             }
 
-            list.delete(handle);
-        } catch (TargetLostException e) {
-            InstructionHandle[] targets = e.getTargets();
-            for (InstructionHandle target : targets) {
-                InstructionTargeter[] targeters = target.getTargeters();
-                for (InstructionTargeter targeter : targeters) {
-                    targeter.updateTarget(target, null);
+            offset += delta + 1;
+            result.frames.add(new StackMapFrame(handleAt(list, offset), locals, stack));
+        }
+        return result;
+    }
+
+    static InstructionHandle handleAt(InstructionList list, int offset) throws IOException {
+        InstructionHandle handle = list.findHandle(offset);
+        if (handle == null) {
+            throw new IOException("Stack map offset " + offset + " is not on an instruction");
+        }
+        return handle;
+    }
+
+    private static List<VerificationType> readTypes(DataInputStream in, InstructionList list) throws IOException {
+        int count = in.readUnsignedShort();
+        List<VerificationType> types = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            types.add(VerificationType.read(in, list));
+        }
+        return types;
+    }
+
+    // StackMapTable for the current instruction positions, or null if a frame lost the
+    // instruction it describes
+    Attribute write(ConstantPoolGen cpgen) throws IOException {
+        List<StackMapFrame> kept = new ArrayList<>();
+        for (StackMapFrame frame : frames) {
+            StackMapFrame last = kept.isEmpty() ? null : kept.get(kept.size() - 1);
+            if (last != null && last.getTarget() == frame.getTarget()) {
+                // A deleted GOTO hands its frame to its target, whose own frame covers both
+                if (last.isMoved() == frame.isMoved()) {
+                    return null;
+                } else if (last.isMoved()) {
+                    kept.set(kept.size() - 1, frame);
                 }
+                continue;
+            }
+            if (last != null && frame.getTarget().getPosition() <= last.getTarget().getPosition()) {
+                return null;
+            }
+            kept.add(frame);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(kept.size());
+
+        // Each frame is written relative to the one before, in the shortest form that fits
+        List<VerificationType> locals = initialLocals;
+        int previous = -1;
+        for (StackMapFrame frame : kept) {
+            for (VerificationType type : frame.locals) {
+                if (type.isLost()) {
+                    return null;
+                }
+            }
+            for (VerificationType type : frame.stack) {
+                if (type.isLost()) {
+                    return null;
+                }
+            }
+
+            int position = frame.getTarget().getPosition();
+            int delta = position - previous - 1;
+            int extra = frame.locals.size() - locals.size();
+            boolean sameLocals = frame.locals.equals(locals);
+
+            if (sameLocals && frame.stack.isEmpty()) {
+                if (delta < 64) {
+                    out.writeByte(delta);
+                } else {
+                    out.writeByte(251);
+                    out.writeShort(delta);
+                }
+            } else if (sameLocals && frame.stack.size() == 1) {
+                if (delta < 64) {
+                    out.writeByte(64 + delta);
+                } else {
+                    out.writeByte(247);
+                    out.writeShort(delta);
+                }
+                frame.stack.get(0).write(out);
+            } else if (frame.stack.isEmpty() && extra >= -3 && extra < 0
+                    && frame.locals.equals(locals.subList(0, frame.locals.size()))) {
+                out.writeByte(251 + extra);
+                out.writeShort(delta);
+            } else if (frame.stack.isEmpty() && extra > 0 && extra <= 3
+                    && locals.equals(frame.locals.subList(0, locals.size()))) {
+                out.writeByte(251 + extra);
+                out.writeShort(delta);
+                for (VerificationType type : frame.locals.subList(locals.size(), frame.locals.size())) {
+                    type.write(out);
+                }
+            } else {
+                out.writeByte(255);
+                out.writeShort(delta);
+                writeTypes(out, frame.locals);
+                writeTypes(out, frame.stack);
             }
+
+            locals = frame.locals;
+            previous = position;
+        }
+
+        byte[] body = bytes.toByteArray();
+        return new Unknown(cpgen.addUtf8(ATTRIBUTE_NAME), body.length, body, cpgen.getConstantPool());
+    }
+
+    private static void writeTypes(DataOutputStream out, List<VerificationType> types) throws IOException {
+        out.writeShort(types.size());
+        for (VerificationType type : types) {
+            type.write(out);
+        }
+    }
+}
+
+// A StringBuilder or StringBuffer under construction on the abstract stack
+class PendingBuilder {
+    final String className;
+    final StringBuilder text = new StringBuilder();
+    boolean initialized;
+
+    PendingBuilder(String className) {
+        this.className = className;
+    }
+}
+
+// Constant on the abstract stack, with the first instruction of the run that pushes it.
+// Primitives are kept in their stack form (Integer for int, char and boolean); boxed
+// values and pending builders have no constant pool form and are only folded into a consumer.
+class StackValue {
+    final Object value;
+    final boolean boxed;
+    final InstructionHandle start;
+
+    StackValue(Object value, boolean boxed, InstructionHandle start) {
+        this.value = value;
+        this.boxed = boxed;
+        this.start = start;
+    }
+
+    boolean isPrimitive() {
+        return value instanceof Number && !boxed;
+    }
+
+    boolean isString() {
+        return value instanceof String;
+    }
+
+    boolean hasConstantForm() {
+        return isPrimitive() || isString();
+    }
+}
+
+// Conversions between constant values and the types of the calls that consume them
+class ConstantEvaluator {
+    static final Set<String> BOX_CLASSES = new HashSet<>(Arrays.asList(
+            "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double",
+            "java.lang.Short", "java.lang.Byte", "java.lang.Character", "java.lang.Boolean"));
+
+    static boolean isConstantPush(Instruction instruction) {
+        return instruction instanceof ConstantPushInstruction || instruction instanceof LDC
+                || instruction instanceof LDC2_W;
+    }
+
+    // Value pushed by a constant instruction, or null if it is not one
+    static Object constantValue(Instruction instruction, ConstantPoolGen cpgen) {
+        if (instruction instanceof ConstantPushInstruction) {
+            return ((ConstantPushInstruction) instruction).getValue();
+        } else if (instruction instanceof LDC) {
+            // Class literals, method handles and the like are not folded
+            Constant constant = cpgen.getConstant(((LDC) instruction).getIndex());
+            boolean literal = constant instanceof ConstantInteger || constant instanceof ConstantFloat
+                    || constant instanceof ConstantString;
+            return literal ? ((LDC) instruction).getValue(cpgen) : null;
+        } else if (instruction instanceof LDC2_W) {
+            return ((LDC2_W) instruction).getValue(cpgen);
+        }
+        return null;
+    }
+
+    // Java value of a stack primitive passed as the given type, or null if it does not fit
+    static Object asType(Object value, Type type) {
+        if (type.equals(Type.LONG)) {
+            return value instanceof Long ? value : null;
+        } else if (type.equals(Type.FLOAT)) {
+            return value instanceof Float ? value : null;
+        } else if (type.equals(Type.DOUBLE)) {
+            return value instanceof Double ? value : null;
+        } else if (!(value instanceof Integer)) {
+            return null;
+        } else if (type.equals(Type.CHAR)) {
+            return (char) ((Integer) value).intValue();
+        } else if (type.equals(Type.BOOLEAN)) {
+            return (Integer) value != 0;
+        }
+        return value;
+    }
+
+    // Stack form of a box unwrapped by a xxxValue() call returning the given type
+    static Object unbox(Object value, Type type) {
+        if (value instanceof Character) {
+            return type.equals(Type.CHAR) ? (int) (Character) value : null;
+        } else if (value instanceof Boolean) {
+            return type.equals(Type.BOOLEAN) ? ((Boolean) value ? 1 : 0) : null;
+        } else if (!(value instanceof Number)) {
+            return null;
         }
+        Number number = (Number) value;
+
+        if (type.equals(Type.INT)) {
+            return number.intValue();
+        } else if (type.equals(Type.LONG)) {
+            return number.longValue();
+        } else if (type.equals(Type.FLOAT)) {
+            return number.floatValue();
+        } else if (type.equals(Type.DOUBLE)) {
+            return number.doubleValue();
+        } else if (type.equals(Type.SHORT)) {
+            return (int) number.shortValue();
+        } else if (type.equals(Type.BYTE)) {
+            return (int) number.byteValue();
+        }
+        return null;
+    }
+
+    // Text a value contributes when passed as the given parameter type, or null if unknown
+    static String format(StackValue operand, Type type) {
+        if (type instanceof BasicType) {
+            Object primitive = operand.isPrimitive() ? asType(operand.value, type) : null;
+            return primitive == null ? null : String.valueOf(primitive);
+        } else if (operand.isString() || operand.boxed) {
+            return String.valueOf(operand.value);
+        }
+        return null;
     }
 }
 
 // Concrete instruction handlers
+class ConstantPushInstructionHandler extends InstructionHandler {
+    public ConstantPushInstructionHandler(ConstantPoolGen cpgen) {
+        super(cpgen);
+    }
+
+    @Override
+    public boolean canHandle(Instruction instruction) {
+        return ConstantEvaluator.isConstantPush(instruction);
+    }
+
+    @Override
+    public void handle(InstructionHandle handle, InstructionList list,
+            Stack<StackValue> constantStack, VariableState vars) {
+        Object value = ConstantEvaluator.constantValue(handle.getInstruction(), cpgen);
+        if (value == null) {
+            constantStack.clear();
+            return;
+        }
+        constantStack.push(new StackValue(value, false, handle));
+    }
+}
+
 class ArithmeticInstructionHandler extends InstructionHandler {
+    private final Class<? extends Instruction> instructionClass;
     private final ArithmeticOperation operation;
 
-    public ArithmeticInstructionHandler(ConstantPoolGen cpgen, ArithmeticOperation operation) {
+    public ArithmeticInstructionHandler(ConstantPoolGen cpgen, Class<? extends Instruction> instructionClass,
+            ArithmeticOperation operation) {
         super(cpgen);
+        this.instructionClass = instructionClass;
         this.operation = operation;
     }
 
     @Override
     public boolean canHandle(Instruction instruction) {
-        return instruction instanceof ArithmeticInstruction;
+        return instruction.getClass() == instructionClass;
     }
 
     @Override
     public void handle(InstructionHandle handle, InstructionList list,
-            Stack<Number> constantStack, HashMap<Integer, Number> vars) {
-        // Check if we have enough operands on the stack
-        if (constantStack.size() < 2) {
+            Stack<StackValue> constantStack, VariableState vars) {
+        // Check if we have enough constant operands on the stack
+        if (constantStack.size() < 2
+                || !constantStack.get(constantStack.size() - 1).isPrimitive()
+                || !constantStack.get(constantStack.size() - 2).isPrimitive()) {
+            constantStack.clear();
             return;
         }
 
-        try {
-            Number x = constantStack.pop();
-            Number y = constantStack.pop();
-
-            // Skip if either operand is null
-            if (x == null || y == null) {
-                // Restore the stack state
-                constantStack.push(y);
-                constantStack.push(x);
-                return;
-            }
+        StackValue x = constantStack.pop();
+        StackValue y = constantStack.pop();
 
-            Number result = operation.perform(x, y);
-            if (result != null) {
-                constantStack.push(result);
-
-                // Replace the arithmetic instruction with LDC
-                if (result instanceof Double) {
-                    list.insert(handle, new LDC2_W(cpgen.addDouble((Double) result)));
-                } else if (result instanceof Long) {
-                    list.insert(handle, new LDC2_W(cpgen.addLong((Long) result)));
-                } else if (result instanceof Integer) {
-                    list.insert(handle, new LDC(cpgen.addInteger((Integer) result)));
-                } else if (result instanceof Float) {
-                    list.insert(handle, new LDC(cpgen.addFloat((Float) result)));
-                }
-
-                InstructionUtils.deleteInstruction(handle, list);
-            } else {
-                // Restore the stack state if operation failed
-                constantStack.push(y);
-                constantStack.push(x);
-            }
+        try {
+            Number result = operation.perform((Number) x.value, (Number) y.value);
+
+            // Replace both operands and the arithmetic instruction with LDC
+            InstructionHandle replaced = InstructionUtils.replaceRun(y.start, handle,
+                    InstructionUtils.constantInstruction(result, cpgen), list);
+            constantStack.push(new StackValue(result, false, replaced));
+        } catch (ArithmeticException e) {
+            // Division by zero has to happen at run time
+            constantStack.clear();
         } catch (Exception e) {
             System.err.println("Error optimizing arithmetic instruction: " + e.getMessage());
+            constantStack.clear();
         }
     }
 }
 
 // track variable state
 class VariableState {
-    private final Map<Integer, Number> constantValues;
+    // Locals written once keep their value for the whole method
+    private final Map<Integer, Object> constantValues;
+    // Reassigned locals only keep it until the next join point
+    private final Map<Integer, Object> blockValues;
     private final Set<Integer> modifiedVariables;
 
     public VariableState() {
         this.constantValues = new HashMap<>();
+        this.blockValues = new HashMap<>();
         this.modifiedVariables = new HashSet<>();
     }
 
-    public void setConstant(int index, Number value) {
-        if (!modifiedVariables.contains(index)) {
+    public void setConstant(int index, Object value) {
+        if (modifiedVariables.contains(index)) {
+            blockValues.put(index, value);
+        } else {
             constantValues.put(index, value);
         }
     }
@@ -219,12 +781,28 @@ class VariableState {
         constantValues.remove(index);
     }
 
-    public Number getValue(int index) {
-        return constantValues.get(index);
+    // A write of size slots at index; a long or double just below loses its second slot
+    public void forget(int index, int size) {
+        for (int slot = index; slot < index + size; slot++) {
+            blockValues.remove(slot);
+        }
+        Object below = blockValues.get(index - 1);
+        if (below instanceof Long || below instanceof Double) {
+            blockValues.remove(index - 1);
+        }
+    }
+
+    public void clearBlock() {
+        blockValues.clear();
+    }
+
+    public Object getValue(int index) {
+        Object value = constantValues.get(index);
+        return value != null ? value : blockValues.get(index);
     }
 
     public boolean isConstant(int index) {
-        return constantValues.containsKey(index);
+        return getValue(index) != null;
     }
 }
 
@@ -240,22 +818,17 @@ class StoreInstructionHandler extends InstructionHandler {
 
     @Override
     public void handle(InstructionHandle handle, InstructionList list,
-            Stack<Number> constantStack, HashMap<Integer, Number> vars) {
-        if (constantStack.isEmpty()) {
-            return;
+            Stack<StackValue> constantStack, VariableState vars) {
+        StoreInstruction store = (StoreInstruction) handle.getInstruction();
+        vars.forget(store.getIndex(), store.getType(cpgen).getSize());
+
+        // Remember constant numbers and strings; the store itself stays, since loads
+        // placed before it (e.g. at the head of a loop) still read the variable
+        if (!constantStack.isEmpty() && constantStack.peek().hasConstantForm()
+                && (store instanceof ASTORE) == constantStack.peek().isString()) {
+            vars.setConstant(store.getIndex(), constantStack.peek().value);
         }
-
-        Number value = constantStack.pop();
-        int index = ((StoreInstruction) handle.getInstruction()).getIndex();
-
-        // Only store if the value is a constant number
-        if (value != null &&
-                (value instanceof Integer || value instanceof Long ||
-                        value instanceof Float || value instanceof Double)) {
-            vars.put(index, value);
-        }
-
-        InstructionUtils.deleteInstruction(handle, list);
+        constantStack.clear();
     }
 }
 
@@ -266,31 +839,24 @@ class LoadInstructionHandler extends InstructionHandler {
 
     @Override
     public boolean canHandle(Instruction instruction) {
-        return instruction instanceof LoadInstruction && !(instruction instanceof ALOAD);
+        return instruction instanceof LoadInstruction;
     }
 
     @Override
     public void handle(InstructionHandle handle, InstructionList list,
-            Stack<Number> constantStack, HashMap<Integer, Number> vars) {
+            Stack<StackValue> constantStack, VariableState vars) {
         int index = ((LoadInstruction) handle.getInstruction()).getIndex();
-        Number value = vars.get(index);
-
-        if (value != null) {
-            constantStack.push(value);
-
-            // Replace load with constant
-            if (value instanceof Double) {
-                list.insert(handle, new LDC2_W(cpgen.addDouble((Double) value)));
-            } else if (value instanceof Long) {
-                list.insert(handle, new LDC2_W(cpgen.addLong((Long) value)));
-            } else if (value instanceof Integer) {
-                list.insert(handle, new LDC(cpgen.addInteger((Integer) value)));
-            } else if (value instanceof Float) {
-                list.insert(handle, new LDC(cpgen.addFloat((Float) value)));
-            }
+        Object value = vars.getValue(index);
 
-            InstructionUtils.deleteInstruction(handle, list);
+        if (value == null) {
+            constantStack.clear();
+            return;
         }
+
+        // Replace load with constant
+        InstructionHandle replaced = InstructionUtils.replaceRun(handle, handle,
+                InstructionUtils.constantInstruction(value, cpgen), list);
+        constantStack.push(new StackValue(value, false, replaced));
     }
 }
 
@@ -306,7 +872,7 @@ class GotoInstructionHandler extends InstructionHandler {
 
     @Override
     public void handle(InstructionHandle handle, InstructionList list,
-            Stack<Number> constantStack, HashMap<Integer, Number> vars) {
+            Stack<StackValue> constantStack, VariableState vars) {
         GotoInstruction gotoInst = (GotoInstruction) handle.getInstruction();
         InstructionHandle target = gotoInst.getTarget();
 
@@ -314,6 +880,247 @@ class GotoInstructionHandler extends InstructionHandler {
         if (target == handle.getNext()) {
             InstructionUtils.deleteInstruction(handle, list);
         }
+        constantStack.clear();
+    }
+}
+
+// Folds String.valueOf(c), Box.valueOf(c) and box.xxxValue() on constants
+class ConstantCallInstructionHandler extends InstructionHandler {
+    public ConstantCallInstructionHandler(ConstantPoolGen cpgen) {
+        super(cpgen);
+    }
+
+    @Override
+    public boolean canHandle(Instruction instruction) {
+        if (!(instruction instanceof INVOKESTATIC || instruction instanceof INVOKEVIRTUAL)) {
+            return false;
+        }
+        InvokeInstruction invoke = (InvokeInstruction) instruction;
+        String owner = invoke.getClassName(cpgen);
+        String name = invoke.getMethodName(cpgen);
+        int arguments = invoke.getArgumentTypes(cpgen).length;
+
+        if (instruction instanceof INVOKESTATIC) {
+            return name.equals("valueOf") && arguments == 1
+                    && (owner.equals("java.lang.String") || ConstantEvaluator.BOX_CLASSES.contains(owner));
+        }
+        return name.endsWith("Value") && arguments == 0 && ConstantEvaluator.BOX_CLASSES.contains(owner);
+    }
+
+    @Override
+    public void handle(InstructionHandle handle, InstructionList list,
+            Stack<StackValue> constantStack, VariableState vars) {
+        InvokeInstruction invoke = (InvokeInstruction) handle.getInstruction();
+        if (constantStack.isEmpty()) {
+            return;
+        }
+        StackValue operand = constantStack.pop();
+
+        Object result = null;
+        boolean boxed = false;
+        if (invoke instanceof INVOKEVIRTUAL) {
+            result = operand.boxed ? ConstantEvaluator.unbox(operand.value, invoke.getReturnType(cpgen)) : null;
+        } else if (invoke.getClassName(cpgen).equals("java.lang.String")) {
+            result = ConstantEvaluator.format(operand, invoke.getArgumentTypes(cpgen)[0]);
+        } else {
+            Type type = invoke.getArgumentTypes(cpgen)[0];
+            result = type instanceof BasicType && operand.isPrimitive()
+                    ? ConstantEvaluator.asType(operand.value, type) : null;
+            boxed = true;
+        }
+
+        if (result == null) {
+            constantStack.clear();
+        } else if (boxed) {
+            // Boxes have no constant pool form, so the run stays until something consumes it
+            constantStack.push(new StackValue(result, true, operand.start));
+        } else {
+            InstructionHandle replaced = InstructionUtils.replaceRun(operand.start, handle,
+                    InstructionUtils.constantInstruction(result, cpgen), list);
+            constantStack.push(new StackValue(result, false, replaced));
+        }
+    }
+}
+
+// Folds new StringBuilder().append(c1)...append(cn).toString() with constant operands into one LDC
+class StringBuilderInstructionHandler extends InstructionHandler {
+    public StringBuilderInstructionHandler(ConstantPoolGen cpgen) {
+        super(cpgen);
+    }
+
+    private static boolean isBuilder(String className) {
+        return className.equals("java.lang.StringBuilder") || className.equals("java.lang.StringBuffer");
+    }
+
+    @Override
+    public boolean canHandle(Instruction instruction) {
+        if (instruction instanceof NEW) {
+            return isBuilder(((NEW) instruction).getLoadClassType(cpgen).getClassName());
+        } else if (instruction instanceof DUP) {
+            return true;
+        } else if (instruction instanceof INVOKESPECIAL || instruction instanceof INVOKEVIRTUAL) {
+            InvokeInstruction invoke = (InvokeInstruction) instruction;
+            String name = invoke.getMethodName(cpgen);
+            return isBuilder(invoke.getClassName(cpgen))
+                    && (name.equals("<init>") || name.equals("append") || name.equals("toString"));
+        }
+        return false;
+    }
+
+    @Override
+    public void handle(InstructionHandle handle, InstructionList list,
+            Stack<StackValue> constantStack, VariableState vars) {
+        Instruction instruction = handle.getInstruction();
+
+        if (instruction instanceof NEW) {
+            String className = ((NEW) instruction).getLoadClassType(cpgen).getClassName();
+            constantStack.push(new StackValue(new PendingBuilder(className), false, handle));
+        } else if (instruction instanceof DUP) {
+            // Only the DUP between NEW and <init> is modelled
+            PendingBuilder builder = topBuilder(constantStack);
+            if (builder == null || builder.initialized) {
+                constantStack.clear();
+                return;
+            }
+            constantStack.push(constantStack.peek());
+        } else if (!foldCall(handle, list, constantStack)) {
+            constantStack.clear();
+        }
+    }
+
+    private boolean foldCall(InstructionHandle handle, InstructionList list, Stack<StackValue> constantStack) {
+        InvokeInstruction invoke = (InvokeInstruction) handle.getInstruction();
+        String name = invoke.getMethodName(cpgen);
+        Type[] args = invoke.getArgumentTypes(cpgen);
+        if (args.length > 1 || constantStack.size() < args.length + 1) {
+            return false;
+        }
+
+        String text = "";
+        if (args.length == 1) {
+            StackValue operand = constantStack.pop();
+            // new StringBuilder(int capacity) adds no text
+            text = name.equals("<init>") && args[0].equals(Type.INT) ? "" : ConstantEvaluator.format(operand, args[0]);
+            if (text == null) {
+                return false;
+            }
+        }
+
+        PendingBuilder builder = topBuilder(constantStack);
+        if (builder == null || !builder.className.equals(invoke.getClassName(cpgen))) {
+            return false;
+        }
+
+        if (name.equals("<init>")) {
+            if (builder.initialized) {
+                return false;
+            }
+            // The constructor consumes the DUPed reference
+            constantStack.pop();
+            if (topBuilder(constantStack) != builder) {
+                return false;
+            }
+            builder.initialized = true;
+            builder.text.append(text);
+        } else if (!builder.initialized) {
+            return false;
+        } else if (name.equals("append")) {
+            // append returns the builder, which stays on the stack
+            builder.text.append(text);
+        } else {
+            StackValue started = constantStack.pop();
+            String folded = builder.text.toString();
+            InstructionHandle replaced = InstructionUtils.replaceRun(started.start, handle,
+                    new LDC(cpgen.addString(folded)), list);
+            constantStack.push(new StackValue(folded, false, replaced));
+        }
+        return true;
+    }
+
+    private static PendingBuilder topBuilder(Stack<StackValue> constantStack) {
+        if (constantStack.isEmpty() || !(constantStack.peek().value instanceof PendingBuilder)) {
+            return null;
+        }
+        return (PendingBuilder) constantStack.peek().value;
+    }
+}
+
+// Folds invokedynamic string concatenation (javac 9+) whose arguments are all constants
+class StringConcatInstructionHandler extends InstructionHandler {
+    private final BootstrapMethods bootstrapMethods;
+
+    public StringConcatInstructionHandler(ConstantPoolGen cpgen, BootstrapMethods bootstrapMethods) {
+        super(cpgen);
+        this.bootstrapMethods = bootstrapMethods;
+    }
+
+    @Override
+    public boolean canHandle(Instruction instruction) {
+        return instruction instanceof INVOKEDYNAMIC
+                && ((INVOKEDYNAMIC) instruction).getMethodName(cpgen).equals("makeConcatWithConstants");
+    }
+
+    @Override
+    public void handle(InstructionHandle handle, InstructionList list,
+            Stack<StackValue> constantStack, VariableState vars) {
+        INVOKEDYNAMIC invoke = (INVOKEDYNAMIC) handle.getInstruction();
+        Type[] args = invoke.getArgumentTypes(cpgen);
+        BootstrapMethod bootstrap = bootstrapMethod(invoke);
+
+        if (bootstrap == null || bootstrap.getBootstrapArguments().length == 0
+                || constantStack.size() < args.length) {
+            constantStack.clear();
+            return;
+        }
+
+        // Operands in push order
+        List<StackValue> operands = new ArrayList<>(
+                constantStack.subList(constantStack.size() - args.length, constantStack.size()));
+
+        // \u0001 takes the next operand, \u0002 the next bootstrap constant
+        ConstantPool pool = cpgen.getConstantPool();
+        int[] constants = bootstrap.getBootstrapArguments();
+        String recipe = ((ConstantString) pool.getConstant(constants[0])).getBytes(pool);
+        StringBuilder folded = new StringBuilder();
+        int operand = 0;
+        int constant = 1;
+        for (char c : recipe.toCharArray()) {
+            if (c == '\u0001') {
+                String text = ConstantEvaluator.format(operands.get(operand), args[operand]);
+                if (text == null) {
+                    constantStack.clear();
+                    return;
+                }
+                folded.append(text);
+                operand++;
+            } else if (c == '\u0002') {
+                folded.append(((ConstantObject) pool.getConstant(constants[constant++])).getConstantValue(pool));
+            } else {
+                folded.append(c);
+            }
+        }
+
+        for (int i = 0; i < args.length; i++) {
+            constantStack.pop();
+        }
+        InstructionHandle start = operands.isEmpty() ? handle : operands.get(0).start;
+        InstructionHandle replaced = InstructionUtils.replaceRun(start, handle,
+                new LDC(cpgen.addString(folded.toString())), list);
+        constantStack.push(new StackValue(folded.toString(), false, replaced));
+    }
+
+    // Bootstrap entry of a StringConcatFactory call site, or null
+    private BootstrapMethod bootstrapMethod(INVOKEDYNAMIC invoke) {
+        if (bootstrapMethods == null) {
+            return null;
+        }
+        ConstantPool pool = cpgen.getConstantPool();
+        ConstantInvokeDynamic callSite = (ConstantInvokeDynamic) pool.getConstant(invoke.getIndex());
+        BootstrapMethod bootstrap = bootstrapMethods.getBootstrapMethods()[callSite.getBootstrapMethodAttrIndex()];
+
+        ConstantMethodHandle handle = (ConstantMethodHandle) pool.getConstant(bootstrap.getBootstrapMethodRef());
+        ConstantCP factory = (ConstantCP) pool.getConstant(handle.getReferenceIndex());
+        return factory.getClass(pool).equals("java.lang.invoke.StringConcatFactory") ? bootstrap : null;
     }
 }
 
@@ -323,9 +1130,17 @@ public class ConstantFolder {
     private final JavaClass original;
     private JavaClass optimized;
     private final List<InstructionHandler> instructionHandlers;
+    private final List<InstructionHandler> peepholeHandlers;
+    private final ExecutionProfile profile;
     private final Map<Class<? extends Instruction>, ArithmeticOperation> arithmeticOperations;
 
     public ConstantFolder(String classFilePath) {
+        this(classFilePath, null);
+    }
+
+    // With a profile, only hot methods get the full folding passes
+    public ConstantFolder(String classFilePath, ExecutionProfile profile) {
+        this.profile = profile;
         try {
             this.parser = new ClassParser(classFilePath);
             this.original = this.parser.parse();
@@ -333,6 +1148,7 @@ public class ConstantFolder {
 
             // Initialize instruction handlers
             this.instructionHandlers = new ArrayList<>();
+            this.peepholeHandlers = new ArrayList<>();
             this.arithmeticOperations = new HashMap<>();
 
             initializeOperations();
@@ -367,15 +1183,39 @@ public class ConstantFolder {
 
         // Add arithmetic instruction handlers
         for (Map.Entry<Class<? extends Instruction>, ArithmeticOperation> entry : arithmeticOperations.entrySet()) {
-            instructionHandlers.add(new ArithmeticInstructionHandler(cpgen, entry.getValue()));
+            instructionHandlers.add(new ArithmeticInstructionHandler(cpgen, entry.getKey(), entry.getValue()));
         }
 
+        // Add constant push handler
+        instructionHandlers.add(new ConstantPushInstructionHandler(cpgen));
+
         // Add load and store instruction handlers
         instructionHandlers.add(new LoadInstructionHandler(cpgen));
         instructionHandlers.add(new StoreInstructionHandler(cpgen));
 
         // Add GOTO instruction handler
         instructionHandlers.add(new GotoInstructionHandler(cpgen));
+
+        // Add String and boxed constant handlers
+        instructionHandlers.add(new StringBuilderInstructionHandler(cpgen));
+        instructionHandlers.add(new ConstantCallInstructionHandler(cpgen));
+        instructionHandlers.add(new StringConcatInstructionHandler(cpgen, findBootstrapMethods()));
+
+        // Cold methods only get the cheap peephole clean-up
+        peepholeHandlers.add(new GotoInstructionHandler(cpgen));
+    }
+
+    private BootstrapMethods findBootstrapMethods() {
+        for (Attribute attribute : gen.getAttributes()) {
+            if (attribute instanceof BootstrapMethods) {
+                return (BootstrapMethods) attribute;
+            }
+        }
+        return null;
+    }
+
+    private boolean isHot(ClassGen cgen, Method method) {
+        return profile == null || profile.isHot(cgen.getClassName(), method.getName(), method.getSignature());
     }
 
     private void optimizeMethod(ClassGen cgen, ConstantPoolGen cpgen, Method method) {
@@ -385,33 +1225,65 @@ public class ConstantFolder {
             return;
         }
 
-        Stack<Number> constantStack = new Stack<>();
-        HashMap<Integer, Number> vars = new HashMap<>();
-        VariableState varState = new VariableState();
+        // The abstract stack mirrors the top of the real stack: each entry is a constant
+        // pushed by a straight-line run ending right where the next entry's run begins
+        Stack<StackValue> constantStack = new Stack<>();
+        VariableState vars = new VariableState();
+
+        // Build from the method itself so exception handlers, line numbers,
+        // local variables and argument names come along with the code
+        MethodGen methodGen = new MethodGen(method, cgen.getClassName(), cpgen);
+        InstructionList instList = methodGen.getInstructionList();
+        boolean hot = isHot(cgen, method);
+        List<InstructionHandler> handlers = hot ? instructionHandlers : peepholeHandlers;
+
+        // The peephole handlers never read locals, so cold methods skip the pre-scan
+        if (hot) {
+            markReassignedVariables(methodGen, cpgen, vars);
+        }
 
-        InstructionList instList = new InstructionList(methodCode.getCode());
-        MethodGen methodGen = new MethodGen(method.getAccessFlags(), method.getReturnType(),
-                method.getArgumentTypes(), null, method.getName(),
-                cgen.getClassName(), instList, cpgen);
+        // Frames are tied to their instructions before anything moves
+        StackMapFrames frames;
+        try {
+            frames = StackMapFrames.read(methodGen, cpgen);
+        } catch (IOException e) {
+            System.err.println("Could not read stack map frames of " + method.getName()
+                    + ", leaving it unoptimised: " + e.getMessage());
+            return;
+        }
 
         for (InstructionHandle handle : instList.getInstructionHandles()) {
             Instruction instruction = handle.getInstruction();
             if (instruction == null)
                 continue;
 
+            // Control can arrive from elsewhere, so neither the stack nor
+            // reassigned locals are known any more
+            if (InstructionUtils.isJoinPoint(handle)) {
+                constantStack.clear();
+                vars.clearBlock();
+            }
+
             // Handle variable modifications
             if (instruction instanceof IINC) {
                 int index = ((IINC) instruction).getIndex();
-                varState.markModified(index);
+                vars.forget(index, 1);
             }
 
             // Find appropriate handler
-            for (InstructionHandler handler : instructionHandlers) {
+            boolean handled = false;
+            for (InstructionHandler handler : handlers) {
                 if (handler.canHandle(instruction)) {
                     handler.handle(handle, instList, constantStack, vars);
+                    handled = true;
                     break;
                 }
             }
+
+            // Anything else may consume or push values we do not track
+            if (!handled) {
+                constantStack.clear();
+            }
         }
 
         try {
@@ -420,14 +1292,98 @@ public class ConstantFolder {
             System.out.println("Problem setting positions");
         }
 
+        // Leave untouched methods as they were, StackMapTable included
+        if (Arrays.equals(instList.getByteCode(), methodCode.getCode())) {
+            return;
+        }
+
+        // The stack map frames move with the code; other code attributes
+        // are stale once the instructions change
+        Attribute frameTable = null;
+        try {
+            frameTable = frames == null ? null : frames.write(cpgen);
+        } catch (IOException e) {
+            System.err.println("Could not write stack map frames: " + e.getMessage());
+        }
+        if (frames != null && frameTable == null) {
+            System.err.println("Stack map frames of " + method.getName()
+                    + " no longer match the code, leaving it unoptimised");
+            return;
+        }
+
+        methodGen.removeCodeAttributes();
+        if (frameTable != null) {
+            methodGen.addCodeAttribute(frameTable);
+        }
+        removeEmptyRanges(methodGen);
+
         methodGen.setMaxStack();
         methodGen.setMaxLocals();
         Method newMethod = methodGen.getMethod();
         cgen.replaceMethod(method, newMethod);
     }
 
+    // Only locals written exactly once, and not holding an argument, keep one value for
+    // the whole method; every other slot is marked modified and only known within a block
+    private void markReassignedVariables(MethodGen methodGen, ConstantPoolGen cpgen, VariableState vars) {
+        int argumentSlots = methodGen.isStatic() ? 0 : 1;
+        for (Type type : methodGen.getArgumentTypes()) {
+            argumentSlots += type.getSize();
+        }
+        for (int index = 0; index < argumentSlots; index++) {
+            vars.markModified(index);
+        }
+
+        Map<Integer, Integer> writes = new HashMap<>();
+        List<StoreInstruction> wideStores = new ArrayList<>();
+        for (InstructionHandle handle : methodGen.getInstructionList().getInstructionHandles()) {
+            Instruction instruction = handle.getInstruction();
+            if (instruction instanceof IINC) {
+                writes.merge(((IINC) instruction).getIndex(), 1, Integer::sum);
+            } else if (instruction instanceof StoreInstruction) {
+                StoreInstruction store = (StoreInstruction) instruction;
+                int size = store.getType(cpgen).getSize();
+                for (int index = store.getIndex(); index < store.getIndex() + size; index++) {
+                    writes.merge(index, 1, Integer::sum);
+                }
+                if (size == 2) {
+                    wideStores.add(store);
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Integer> entry : writes.entrySet()) {
+            if (entry.getValue() > 1) {
+                vars.markModified(entry.getKey());
+            }
+        }
+
+        // A long or double is also lost when its second slot is written on its own
+        for (StoreInstruction store : wideStores) {
+            if (writes.get(store.getIndex() + 1) > 1) {
+                vars.markModified(store.getIndex());
+            }
+        }
+    }
+
+    // Drop exception and local variable ranges whose every instruction was deleted
+    private void removeEmptyRanges(MethodGen methodGen) {
+        for (CodeExceptionGen exceptionGen : methodGen.getExceptionHandlers()) {
+            if (exceptionGen.getStartPC().getPosition() > exceptionGen.getEndPC().getPosition()) {
+                methodGen.removeExceptionHandler(exceptionGen);
+            }
+        }
+
+        for (LocalVariableGen variableGen : methodGen.getLocalVariables()) {
+            if (variableGen.getStart().getPosition() > variableGen.getEnd().getPosition()) {
+                methodGen.removeLocalVariable(variableGen);
+            }
+        }
+    }
+
     public void optimize() {
-        ClassGen cgen = new ClassGen(original);
+        // The handlers add their constants to this pool, so optimise the same ClassGen
+        ClassGen cgen = gen;
         ConstantPoolGen cpgen = cgen.getConstantPool();
 
         Method[] methods = cgen.getMethods();
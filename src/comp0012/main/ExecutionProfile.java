@@ -0,0 +1,139 @@
+package comp0012.main;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runtime profile used to decide which methods are worth the full optimisation.
+ * Reads either a CSV of "class,method[,descriptor],invocations[,loopIterations]" lines or
+ * a JFR recording, in which case each jdk.ExecutionSample counts once for every method on
+ * its stack. A method is hot when it accounts for at least hotPercent of the total weight
+ * (of all samples for JFR). CSV rows without a descriptor apply to every overload.
+ */
+public class ExecutionProfile {
+    private final Map<String, Long> weights = new HashMap<>();
+    private final double hotPercent;
+    private long totalWeight;
+
+    private ExecutionProfile(double hotPercent) {
+        this.hotPercent = hotPercent;
+    }
+
+    static ExecutionProfile load(String profilePath, double hotPercent) throws IOException {
+        ExecutionProfile profile = new ExecutionProfile(hotPercent);
+        Path path = Paths.get(profilePath);
+
+        if (profilePath.endsWith(".jfr")) {
+            profile.readRecording(path);
+        } else {
+            profile.readCsv(path);
+        }
+        return profile;
+    }
+
+    boolean isHot(String className, String methodName, String descriptor) {
+        if (totalWeight == 0) {
+            return false;
+        }
+        long weight = weights.getOrDefault(key(className, methodName, descriptor), 0L)
+                + weights.getOrDefault(key(className, methodName, ""), 0L);
+        return weight > 0 && weight * 100.0 / totalWeight >= hotPercent;
+    }
+
+    private void readCsv(Path path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int lineNumber = 0;
+            boolean firstRow = true;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split(",");
+                // The first row may be a header naming the columns
+                if (firstRow) {
+                    firstRow = false;
+                    if (fields.length > 2 && !isCount(fields[fields.length - 1])) {
+                        continue;
+                    }
+                }
+
+                // The descriptor column is optional and always starts with '('
+                int counts = fields.length > 2 && fields[2].trim().startsWith("(") ? 3 : 2;
+                if (fields.length <= counts || fields.length > counts + 2) {
+                    throw new IllegalArgumentException("Malformed profile line " + lineNumber + ": " + line);
+                }
+
+                try {
+                    long weight = Long.parseLong(fields[counts].trim());
+                    if (fields.length > counts + 1) {
+                        weight += Long.parseLong(fields[counts + 1].trim());
+                    }
+                    String descriptor = counts == 3 ? fields[2].trim() : "";
+                    weights.merge(key(fields[0].trim(), fields[1].trim(), descriptor), weight, Long::sum);
+                    totalWeight += weight;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Malformed profile line " + lineNumber + ": " + line, e);
+                }
+            }
+        }
+    }
+
+    private void readRecording(Path path) throws IOException {
+        try (RecordingFile recording = new RecordingFile(path)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                if (!event.getEventType().getName().equals("jdk.ExecutionSample")) {
+                    continue;
+                }
+
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                if (stackTrace == null) {
+                    continue;
+                }
+
+                // Count callers too, so a loop spending its time in callees is still hot
+                Set<String> onStack = new HashSet<>();
+                for (RecordedFrame frame : stackTrace.getFrames()) {
+                    if (frame.isJavaFrame()) {
+                        RecordedMethod method = frame.getMethod();
+                        onStack.add(key(method.getType().getName(), method.getName(), method.getDescriptor()));
+                    }
+                }
+                for (String key : onStack) {
+                    weights.merge(key, 1L, Long::sum);
+                }
+                totalWeight++;
+            }
+        }
+    }
+
+    private static boolean isCount(String field) {
+        try {
+            Long.parseLong(field.trim());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String key(String className, String methodName, String descriptor) {
+        return className.replace('/', '.') + "." + methodName + descriptor;
+    }
+}
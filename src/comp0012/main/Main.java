@@ -22,6 +22,14 @@ public class Main extends SimpleFileVisitor<Path> {
     @Option(name="-out",required=true, usage="Root directory where optimised classfiles will be stored")
     private String outputRoot;
 
+    @Option(name="-profile", usage="CSV or JFR execution profile; only hot methods get the full optimisation")
+    private String profilePath;
+
+    @Option(name="-hotPercent", usage="Share of the profile (in percent) a method needs to count as hot")
+    private double hotPercent = 1.0;
+
+    private ExecutionProfile profile;
+
     private void parseArguments(String args[])
     {
         CmdLineParser parser = new CmdLineParser(this);
@@ -41,6 +49,9 @@ public class Main extends SimpleFileVisitor<Path> {
 	System.out.println("Running COMP207p courswork-2");
         Main main = new Main();
         main.parseArguments(args);
+        if (main.profilePath != null) {
+            main.profile = ExecutionProfile.load(main.profilePath, main.hotPercent);
+        }
         Files.walkFileTree(Paths.get(main.inputRoot), main);
     }
 
@@ -55,8 +66,8 @@ public class Main extends SimpleFileVisitor<Path> {
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         String fname = file.toString();
-        if(fname.endsWith(".class") && !fname.endsWith("Main.class") && !fname.endsWith("ConstantFolder.class")){
-            ConstantFolder cf = new ConstantFolder(file.toString());
+        if(fname.endsWith(".class") && !fname.endsWith("Main.class")){
+            ConstantFolder cf = new ConstantFolder(file.toString(), profile);
             Path rel = Paths.get(inputRoot).relativize(file);
             cf.write(Paths.get(outputRoot, rel.toString()).toAbsolutePath().toString());
         }
@@ -0,0 +1,48 @@
+package comp0012.target;
+
+public class ExceptionFolding {
+    public int methodOne() {
+        try {
+            int a = 10;
+            int b = a * 4;
+            return b + 2;
+        } catch (ArithmeticException e) {
+            return -1;
+        }
+    }
+
+    public int methodTwo(int d) {
+        int a = 12;
+        try {
+            return a / d;
+        } catch (ArithmeticException e) {
+            int fallback = 3 + 4;
+            return fallback;
+        } finally {
+            System.out.println(a * 2);
+        }
+    }
+
+    public int methodThree() {
+        int a = 5;
+        int b = a * 2;
+        try {
+            throw new IllegalStateException("b=" + b);
+        } catch (IllegalStateException e) {
+            return e.getStackTrace()[0].getLineNumber();
+        }
+    }
+
+    public int methodFour() {
+        int total = 0;
+        int step = 3 * 2;
+        for (int i = 0; i < 5; i++) {
+            try {
+                total += step / (i - 2);
+            } catch (ArithmeticException e) {
+                total += 100;
+            }
+        }
+        return total;
+    }
+}
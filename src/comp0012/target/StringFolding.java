@@ -0,0 +1,42 @@
+package comp0012.target;
+
+public class StringFolding {
+    public String methodOne() {
+        return new StringBuilder()
+                .append("a")
+                .append(1)
+                .append('c')
+                .append(true)
+                .append(7L)
+                .append(2.5)
+                .toString();
+    }
+
+    public String methodTwo() {
+        return String.valueOf(42) + "|" + String.valueOf('x') + "|" + String.valueOf(false)
+                + "|" + String.valueOf(Integer.valueOf(9)) + "|" + String.valueOf(Character.valueOf('y'));
+    }
+
+    public int methodThree() {
+        return Integer.valueOf(7).intValue() + Character.valueOf('A').charValue();
+    }
+
+    public String methodFour() {
+        int count = 3;
+        String unit = "ms";
+        long total = 1500L;
+        boolean ok = true;
+        char sep = ':';
+        return "count=" + count + sep + total + unit + " ok=" + ok;
+    }
+
+    public String methodFive() {
+        return new StringBuffer("x").append(Long.valueOf(3L)).append(Boolean.valueOf(true)).toString();
+    }
+
+    public void methodSix() {
+        for (int i = 0; i < 3; i++) {
+            System.out.println("value " + Integer.valueOf(5));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package comp0012.main;
+
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test that a profile limits folding to hot methods
+ */
+public class ConstantFolderTest {
+
+    // A class whose methods hot() and cold() both return 2 + 3
+    private File writeSample() throws IOException {
+        ClassGen classGen = new ClassGen("Sample", "java.lang.Object", "Sample.java", Modifier.PUBLIC, null);
+        ConstantPoolGen cpgen = classGen.getConstantPool();
+        for (String name : new String[] {"hot", "cold"}) {
+            InstructionList list = new InstructionList();
+            list.append(new ICONST(2));
+            list.append(new ICONST(3));
+            list.append(new IADD());
+            list.append(new IRETURN());
+            MethodGen methodGen = new MethodGen(Modifier.PUBLIC | Modifier.STATIC, Type.INT, Type.NO_ARGS, null,
+                    name, "Sample", list, cpgen);
+            methodGen.setMaxStack();
+            methodGen.setMaxLocals();
+            classGen.addMethod(methodGen.getMethod());
+        }
+
+        File file = File.createTempFile("Sample", ".class");
+        file.deleteOnExit();
+        classGen.getJavaClass().dump(file);
+        return file;
+    }
+
+    private boolean hasAdd(JavaClass javaClass, String methodName) {
+        for (Method method : javaClass.getMethods()) {
+            if (method.getName().equals(methodName)) {
+                for (Instruction instruction : new InstructionList(method.getCode().getCode()).getInstructions()) {
+                    if (instruction instanceof IADD) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testColdMethodKeepsArithmetic() throws IOException {
+        File profileFile = File.createTempFile("profile", ".csv");
+        profileFile.deleteOnExit();
+        Files.write(profileFile.toPath(), "Sample,hot,100\nSample,cold,0\n".getBytes(StandardCharsets.UTF_8));
+        ExecutionProfile profile = ExecutionProfile.load(profileFile.getPath(), 50.0);
+
+        File out = File.createTempFile("Sample", ".class");
+        out.deleteOnExit();
+        new ConstantFolder(writeSample().getPath(), profile).write(out.getPath());
+
+        JavaClass folded = new ClassParser(out.getPath()).parse();
+        assertEquals(false, hasAdd(folded, "hot"));
+        assertEquals(true, hasAdd(folded, "cold"));
+    }
+
+}
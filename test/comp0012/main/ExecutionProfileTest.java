@@ -0,0 +1,122 @@
+package comp0012.main;
+
+import jdk.jfr.Recording;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Test reading CSV and JFR execution profiles
+ */
+public class ExecutionProfileTest {
+
+    private long sink;
+
+    private ExecutionProfile load(String csv, double hotPercent) throws IOException {
+        File file = File.createTempFile("profile", ".csv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+        return ExecutionProfile.load(file.getPath(), hotPercent);
+    }
+
+    @Test
+    public void testHeaderAndCommentsSkipped() throws IOException {
+        ExecutionProfile profile = load("# profile\nclass,method,invocations\na.B,hot,99\na.B,cold,1\n", 50.0);
+        assertEquals(true, profile.isHot("a.B", "hot", "()V"));
+        assertEquals(false, profile.isHot("a.B", "cold", "()V"));
+    }
+
+    @Test
+    public void testFullHeaderSkipped() throws IOException {
+        ExecutionProfile profile = load("class,method,descriptor,invocations,loopIterations\n"
+                + "a.B,f,(I)I,10,80\na.B,g,()V,10\n", 50.0);
+        assertEquals(true, profile.isHot("a.B", "f", "(I)I"));
+        assertEquals(false, profile.isHot("a.B", "g", "()V"));
+    }
+
+    @Test
+    public void testLoopCountsAdded() throws IOException {
+        // 10 + 40 of a total 100
+        ExecutionProfile profile = load("a.B,loop,10,40\na.B,other,50\n", 50.0);
+        assertEquals(true, profile.isHot("a.B", "loop", "()V"));
+    }
+
+    @Test
+    public void testHotPercentBoundary() throws IOException {
+        ExecutionProfile profile = load("a.B,edge,25\na.B,rest,75\n", 25.0);
+        assertEquals(true, profile.isHot("a.B", "edge", "()V"));
+
+        profile = load("a.B,edge,25\na.B,rest,75\n", 25.01);
+        assertEquals(false, profile.isHot("a.B", "edge", "()V"));
+    }
+
+    @Test
+    public void testDescriptorSeparatesOverloads() throws IOException {
+        ExecutionProfile profile = load("a.B,f,(I)I,90\na.B,f,(J)J,10\n", 50.0);
+        assertEquals(true, profile.isHot("a.B", "f", "(I)I"));
+        assertEquals(false, profile.isHot("a.B", "f", "(J)J"));
+    }
+
+    @Test
+    public void testUnknownMethodCold() throws IOException {
+        ExecutionProfile profile = load("a.B,f,100\n", 1.0);
+        assertEquals(true, profile.isHot("a/B", "f", "(I)I"));
+        assertEquals(false, profile.isHot("a.B", "g", "()V"));
+    }
+
+    @Test
+    public void testRecordingCountsWholeStack() throws IOException {
+        File file = File.createTempFile("profile", ".jfr");
+        file.deleteOnExit();
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(1));
+            recording.start();
+            sink = spin(System.currentTimeMillis() + 1000);
+            recording.stop();
+            recording.dump(file.toPath());
+        }
+
+        ExecutionProfile profile = ExecutionProfile.load(file.getPath(), 50.0);
+        String className = ExecutionProfileTest.class.getName();
+        assertEquals(true, profile.isHot(className, "spin", "(J)J"));
+        // Never sampled itself, but on the stack of every sample in spin
+        assertEquals(true, profile.isHot(className, "testRecordingCountsWholeStack", "()V"));
+        assertEquals(false, profile.isHot(className, "load", "(Ljava/lang/String;D)Lcomp0012/main/ExecutionProfile;"));
+    }
+
+    private long spin(long until) {
+        long sum = 0;
+        while (System.currentTimeMillis() < until) {
+            sum += sum * 31 + 7;
+        }
+        return sum;
+    }
+
+    @Test
+    public void testMalformedLine() throws IOException {
+        try {
+            load("a.B,f,100\na.B,g,many\n", 1.0);
+            fail("Expected a malformed line error");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Malformed profile line 2: a.B,g,many", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMissingCount() throws IOException {
+        try {
+            load("a.B,f\n", 1.0);
+            fail("Expected a malformed line error");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Malformed profile line 1: a.B,f", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package comp0012.target;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test folding in methods with exception handlers
+ */
+public class ExceptionFoldingTest {
+
+    ExceptionFolding ef = new ExceptionFolding();
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+
+    @Before
+    public void setUpStreams()
+    {
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void cleanUpStreams()
+    {
+        System.setOut(null);
+    }
+
+    @Test
+    public void testMethodOne(){
+        assertEquals(42, ef.methodOne());
+    }
+
+    @Test
+    public void testMethodTwoReturn(){
+        assertEquals(4, ef.methodTwo(3));
+    }
+
+    @Test
+    public void testMethodTwoCatch(){
+        assertEquals(7, ef.methodTwo(0));
+    }
+
+    @Test
+    public void testMethodTwoOut(){
+        ef.methodTwo(0);
+        assertEquals("24\n", outContent.toString());
+    }
+
+    @Test
+    public void testMethodThree(){
+        // The throw is on line 30 of ExceptionFolding.java, so the line
+        // number table must survive optimisation unchanged
+        assertEquals(30, ef.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals(100, ef.methodFour());
+    }
+
+}
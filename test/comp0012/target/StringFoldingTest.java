@@ -0,0 +1,63 @@
+package comp0012.target;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test String and boxed constant folding
+ */
+public class StringFoldingTest {
+
+    StringFolding sf = new StringFolding();
+    private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+
+    @Before
+    public void setUpStreams()
+    {
+        System.setOut(new PrintStream(outContent));
+    }
+
+    @After
+    public void cleanUpStreams()
+    {
+        System.setOut(null);
+    }
+
+    @Test
+    public void testMethodOne(){
+        assertEquals("a1ctrue72.5", sf.methodOne());
+    }
+
+    @Test
+    public void testMethodTwo(){
+        assertEquals("42|x|false|9|y", sf.methodTwo());
+    }
+
+    @Test
+    public void testMethodThree(){
+        assertEquals(72, sf.methodThree());
+    }
+
+    @Test
+    public void testMethodFour(){
+        assertEquals("count=3:1500ms ok=true", sf.methodFour());
+    }
+
+    @Test
+    public void testMethodFive(){
+        assertEquals("x3true", sf.methodFive());
+    }
+
+    @Test
+    public void testMethodSixOut(){
+        sf.methodSix();
+        assertEquals("value 5\nvalue 5\nvalue 5\n", outContent.toString());
+    }
+
+}